@@ -119,7 +119,7 @@ class ExportAction extends AbstractAction implements ThreadFactory{
     }
 
     private int[][] buildImage(Resolution res, WindowState currentState) {
-        return Mandelbrot.mandelbrot(res.getWidth(), res.getHeight(), currentState.getLimit(), 
+        return Mandelbrot.mandelbrot(res.getWidth(), res.getHeight(), currentState.getLimit(), currentState.isAdaptive(),
                 new Mandelbrot.Window(currentState.getFocusX(), currentState.getFocusY(), currentState.getZoom()));
     }
 
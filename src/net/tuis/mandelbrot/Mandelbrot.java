@@ -3,6 +3,7 @@ package net.tuis.mandelbrot;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.util.Arrays;
+import java.util.function.BooleanSupplier;
 import java.util.stream.IntStream;
 
 /**
@@ -12,6 +13,18 @@ import java.util.stream.IntStream;
 public class Mandelbrot {
 
     private static final double MINSTEP = Double.MIN_NORMAL * 4;
+    // number of sample points across the window when estimating a limit.
+    private static final int SAMPLES = 48;
+    private static final int SAMPLE_PERCENTILE = 99;
+    private static final int MIN_LIMIT = 10;
+    // size of the square blocks that grow their limit independently.
+    private static final int GROW_TILE = 32;
+    // a doubling must resolve at least 1/GROW_PROGRESS of the unresolved pixels to try again.
+    private static final int GROW_PROGRESS = 50;
+    // bounding box of the main cardioid and the period-2 bulb.
+    private static final double BULBS_LEFT = -1.25;
+    private static final double BULBS_RIGHT = 0.375;
+    private static final double BULBS_HALF_HEIGHT = 0.65;
 
     /**
      * A description of the center of focus for the window, and the zoom level.
@@ -84,24 +97,379 @@ public class Mandelbrot {
             return overZoom(pixWidth, pixHeight, limit);
         }
 
-        final double left = window.getCenterX() - mandWidth / 2.0;
-        final double bottom = window.getCenterY() - (pixHeight / 2) * xStep;
-
-        final double[] scaleX = IntStream.range(0, pixWidth)
-                .mapToDouble(x -> left + x * xStep).toArray();
-        final double[] scaleY = IntStream.range(0, pixHeight)
-                .mapToDouble(y -> bottom + y * xStep).toArray();
+        final double[] scaleX = scaleX(pixWidth, window, xStep);
+        final double[] scaleY = scaleY(pixHeight, window, xStep);
+        final boolean bulbs = overlapsBulbs(scaleX, scaleY);
 
         return IntStream
                 .range(0, pixHeight)
                 .parallel()
                 .mapToObj(
                         y -> IntStream.range(0, pixWidth)
-                                .map(x -> countIterations(limit, scaleX[x], scaleY[y]))
+                                .map(x -> countIterations(bulbs, limit, scaleX[x], scaleY[y]))
                                 .toArray()).toArray(s -> new int[s][]);
 
     }
 
+    /**
+     * Compute a matrix of iterations representing a window in to the Mandelbrot set,
+     * one row at a time on the calling thread. This is intended for speculative,
+     * low-priority work that should give way as soon as something more important
+     * comes along.
+     * 
+     * @param pixWidth The width of the matrix to compute
+     * @param pixHeight The height of the matrix to compute
+     * @param limit The limit at which computations assume the coordinate is included in the set.
+     * @param window The definition of the location and zoom degree in to the set.
+     * @param cancelled Checked before each row, the computation is abandoned when this returns true.
+     * @return A matrix containing the computational iterations, or null if the computation was cancelled.
+     */
+    public static final int[][] mandelbrot(final int pixWidth, final int pixHeight,
+            final int limit, final Window window, final BooleanSupplier cancelled) {
+
+        final double mandWidth = 3.5 / window.getZoom();
+        final double xStep = mandWidth / pixWidth;
+
+        if (xStep < MINSTEP) {
+            return overZoom(pixWidth, pixHeight, limit);
+        }
+
+        final double[] scaleX = scaleX(pixWidth, window, xStep);
+        final double[] scaleY = scaleY(pixHeight, window, xStep);
+        final boolean bulbs = overlapsBulbs(scaleX, scaleY);
+
+        final int[][] result = new int[pixHeight][];
+        for (int y = 0; y < pixHeight; y++) {
+            if (cancelled.getAsBoolean()) {
+                return null;
+            }
+            final double y0 = scaleY[y];
+            result[y] = IntStream.range(0, pixWidth)
+                    .map(x -> countIterations(bulbs, limit, scaleX[x], y0))
+                    .toArray();
+        }
+        return result;
+
+    }
+
+    /**
+     * Compute a matrix of iterations representing a window in to the Mandelbrot set,
+     * optionally choosing the limit for the window rather than always using the
+     * maximum. See {@link #estimateLimit(int, int, int, Window)} and
+     * {@link #growLimit(int[][], int, int, Window)}.
+     * <p>
+     * Pixels that are never resolved are set to the given limit in either case,
+     * so the matrix maps to colors with <code>buildColors(limit)</code>.
+     * 
+     * @param pixWidth The width of the matrix to compute
+     * @param pixHeight The height of the matrix to compute
+     * @param limit The limit, or the maximum limit when adaptive.
+     * @param adaptive Whether to choose the limit for the window.
+     * @param window The definition of the location and zoom degree in to the set.
+     * @return A matrix containing the computational iterations
+     */
+    public static final int[][] mandelbrot(final int pixWidth, final int pixHeight,
+            final int limit, final boolean adaptive, final Window window) {
+        if (!adaptive) {
+            return mandelbrot(pixWidth, pixHeight, limit, window);
+        }
+        final int start = estimateLimit(pixWidth, pixHeight, limit, window);
+        final int[][] mand = mandelbrot(pixWidth, pixHeight, start, window);
+        settle(mand, growLimit(mand, start, limit, window), limit);
+        return mand;
+    }
+
+    /**
+     * As {@link #mandelbrot(int, int, int, boolean, Window)}, but computed on the
+     * calling thread and abandoned as soon as the computation is cancelled.
+     * 
+     * @param pixWidth The width of the matrix to compute
+     * @param pixHeight The height of the matrix to compute
+     * @param limit The limit, or the maximum limit when adaptive.
+     * @param adaptive Whether to choose the limit for the window.
+     * @param window The definition of the location and zoom degree in to the set.
+     * @param cancelled Checked regularly, the computation is abandoned when this returns true.
+     * @return A matrix containing the computational iterations, or null if the computation was cancelled.
+     */
+    public static final int[][] mandelbrot(final int pixWidth, final int pixHeight,
+            final int limit, final boolean adaptive, final Window window, final BooleanSupplier cancelled) {
+        if (!adaptive) {
+            return mandelbrot(pixWidth, pixHeight, limit, window, cancelled);
+        }
+        final int start = estimateLimit(pixWidth, pixHeight, limit, window, cancelled);
+        if (start < 0) {
+            return null;
+        }
+        final int[][] mand = mandelbrot(pixWidth, pixHeight, start, window, cancelled);
+        if (mand == null) {
+            return null;
+        }
+        final int used = growLimit(mand, start, limit, window, cancelled);
+        if (used < 0) {
+            return null;
+        }
+        settle(mand, used, limit);
+        return mand;
+    }
+
+    // move pixels left unresolved at the limit that was used to the full limit.
+    private static void settle(final int[][] mand, final int used, final int limit) {
+        if (used == limit) {
+            return;
+        }
+        for (int[] row : mand) {
+            for (int x = 0; x < row.length; x++) {
+                if (row[x] == used) {
+                    row[x] = limit;
+                }
+            }
+        }
+    }
+
+    /**
+     * Estimate the smallest limit that resolves the boundary detail in a window,
+     * by sampling a sparse grid of points at the maximum limit.
+     * 
+     * @param pixWidth The width of the matrix that will be computed
+     * @param pixHeight The height of the matrix that will be computed
+     * @param maxLimit The largest limit that may be returned.
+     * @param window The definition of the location and zoom degree in to the set.
+     * @return The estimated limit, between 10 (or maxLimit if that is smaller) and maxLimit.
+     */
+    public static final int estimateLimit(final int pixWidth, final int pixHeight,
+            final int maxLimit, final Window window) {
+        return estimateLimit(pixWidth, pixHeight, maxLimit, window, true, () -> false);
+    }
+
+    /**
+     * As {@link #estimateLimit(int, int, int, Window)}, but sampled on the
+     * calling thread and abandoned as soon as the estimate is cancelled.
+     * 
+     * @param pixWidth The width of the matrix that will be computed
+     * @param pixHeight The height of the matrix that will be computed
+     * @param maxLimit The largest limit that may be returned.
+     * @param window The definition of the location and zoom degree in to the set.
+     * @param cancelled Checked before each row of samples.
+     * @return The estimated limit, or -1 if the estimate was cancelled.
+     */
+    public static final int estimateLimit(final int pixWidth, final int pixHeight,
+            final int maxLimit, final Window window, final BooleanSupplier cancelled) {
+        return estimateLimit(pixWidth, pixHeight, maxLimit, window, false, cancelled);
+    }
+
+    private static int estimateLimit(final int pixWidth, final int pixHeight,
+            final int maxLimit, final Window window, final boolean parallel, final BooleanSupplier cancelled) {
+
+        final double mandWidth = 3.5 / window.getZoom();
+        final double xStep = mandWidth / pixWidth;
+
+        if (xStep < MINSTEP) {
+            // nothing is computed for an over-zoomed window anyway.
+            return maxLimit;
+        }
+
+        final double[] scaleX = scaleX(pixWidth, window, xStep);
+        final double[] scaleY = scaleY(pixHeight, window, xStep);
+        final int stride = Math.max(1, pixWidth / SAMPLES);
+        final boolean bulbs = overlapsBulbs(scaleX, scaleY);
+
+        final IntStream rows = IntStream.range(0, (pixHeight + stride - 1) / stride);
+        final int[] escaped = (parallel ? rows.parallel() : rows)
+                .flatMap(
+                        y -> cancelled.getAsBoolean() ? IntStream.empty() : IntStream.range(0, (pixWidth + stride - 1) / stride)
+                                .map(x -> countIterations(bulbs, maxLimit, scaleX[x * stride], scaleY[y * stride])))
+                .filter(i -> i < maxLimit).sorted().toArray();
+
+        if (cancelled.getAsBoolean()) {
+            return -1;
+        }
+        if (escaped.length == 0) {
+            // nothing escapes, it may all be inside, or the detail is deeper than we can see.
+            return maxLimit;
+        }
+        // ignore the few slowest samples, growLimit(...) can pick them up where they matter.
+        final int slow = escaped[(escaped.length - 1) * SAMPLE_PERCENTILE / 100];
+        return Math.min(maxLimit, Math.max(MIN_LIMIT, slow * 2));
+    }
+
+    /**
+     * Raise the limit of a computed matrix only where it matters. The matrix is
+     * processed in small blocks, and a block's limit is doubled (up to maxLimit)
+     * while it contains both escaped and unresolved pixels and the previous
+     * doubling resolved a worthwhile share of them. Only the unresolved pixels
+     * are recomputed.
+     * <p>
+     * The matrix is updated in place. Pixels that remain unresolved are set to
+     * the returned limit so that they all map to the same color.
+     * 
+     * @param mand The matrix previously computed with the given limit.
+     * @param limit The limit the matrix was computed with.
+     * @param maxLimit The largest limit that may be used.
+     * @param window The definition of the location and zoom degree the matrix was computed for.
+     * @return The largest limit used in the matrix.
+     */
+    public static final int growLimit(final int[][] mand, final int limit,
+            final int maxLimit, final Window window) {
+        return growLimit(mand, limit, maxLimit, window, true, () -> false);
+    }
+
+    /**
+     * As {@link #growLimit(int[][], int, int, Window)}, but computed on the
+     * calling thread and abandoned as soon as it is cancelled, in which case the
+     * matrix is left partially updated and should be discarded.
+     * 
+     * @param mand The matrix previously computed with the given limit.
+     * @param limit The limit the matrix was computed with.
+     * @param maxLimit The largest limit that may be used.
+     * @param window The definition of the location and zoom degree the matrix was computed for.
+     * @param cancelled Checked before each doubling of each block.
+     * @return The largest limit used in the matrix, or -1 if it was cancelled.
+     */
+    public static final int growLimit(final int[][] mand, final int limit,
+            final int maxLimit, final Window window, final BooleanSupplier cancelled) {
+        return growLimit(mand, limit, maxLimit, window, false, cancelled);
+    }
+
+    private static int growLimit(final int[][] mand, final int limit,
+            final int maxLimit, final Window window, final boolean parallel, final BooleanSupplier cancelled) {
+
+        final int pixHeight = mand.length;
+        final int pixWidth = mand[0].length;
+        final double mandWidth = 3.5 / window.getZoom();
+        final double xStep = mandWidth / pixWidth;
+
+        if (xStep < MINSTEP || limit >= maxLimit) {
+            return limit;
+        }
+
+        final double[] scaleX = scaleX(pixWidth, window, xStep);
+        final double[] scaleY = scaleY(pixHeight, window, xStep);
+        final int tilesX = (pixWidth + GROW_TILE - 1) / GROW_TILE;
+        final int tilesY = (pixHeight + GROW_TILE - 1) / GROW_TILE;
+        final boolean bulbs = overlapsBulbs(scaleX, scaleY);
+
+        final IntStream tiles = IntStream.range(0, tilesX * tilesY);
+        final int[] used = (parallel ? tiles.parallel() : tiles)
+                .map(t -> growTile(mand, (t % tilesX) * GROW_TILE, (t / tilesX) * GROW_TILE,
+                        limit, maxLimit, bulbs, scaleX, scaleY, cancelled)).toArray();
+        if (cancelled.getAsBoolean()) {
+            return -1;
+        }
+        final int top = IntStream.of(used).max().orElse(limit);
+
+        for (int t = 0; t < used.length; t++) {
+            if (used[t] == top) {
+                continue;
+            }
+            final int left = (t % tilesX) * GROW_TILE;
+            final int right = Math.min(left + GROW_TILE, pixWidth);
+            final int lower = (t / tilesX) * GROW_TILE;
+            final int upper = Math.min(lower + GROW_TILE, pixHeight);
+            for (int y = lower; y < upper; y++) {
+                for (int x = left; x < right; x++) {
+                    if (mand[y][x] == used[t]) {
+                        mand[y][x] = top;
+                    }
+                }
+            }
+        }
+        return top;
+    }
+
+    private static int growTile(final int[][] mand, final int left, final int bottom,
+            final int limit, final int maxLimit, final boolean bulbs, final double[] scaleX, final double[] scaleY,
+            final BooleanSupplier cancelled) {
+        final int right = Math.min(left + GROW_TILE, scaleX.length);
+        final int top = Math.min(bottom + GROW_TILE, scaleY.length);
+        int current = limit;
+        int unresolved = count(mand, left, right, bottom, top, current);
+        if (unresolved == 0 || unresolved == (right - left) * (top - bottom)) {
+            // either fully resolved, or entirely inside the set.
+            return current;
+        }
+        while (current < maxLimit && !cancelled.getAsBoolean()) {
+            final int next = (int) Math.min(maxLimit, current * 2L);
+            for (int y = bottom; y < top; y++) {
+                for (int x = left; x < right; x++) {
+                    if (mand[y][x] == current) {
+                        mand[y][x] = countIterations(bulbs, next, scaleX[x], scaleY[y]);
+                    }
+                }
+            }
+            final int remaining = count(mand, left, right, bottom, top, next);
+            // stop once a doubling barely changes the block, the rest are likely inside the set.
+            final boolean progress = (unresolved - remaining) * GROW_PROGRESS >= unresolved;
+            current = next;
+            unresolved = remaining;
+            if (unresolved == 0 || !progress) {
+                break;
+            }
+        }
+        return current;
+    }
+
+    private static int count(final int[][] mand, final int left, final int right,
+            final int bottom, final int top, final int value) {
+        int count = 0;
+        for (int y = bottom; y < top; y++) {
+            for (int x = left; x < right; x++) {
+                if (mand[y][x] == value) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static double[] scaleX(final int pixWidth, final Window window, final double xStep) {
+        final double left = window.getCenterX() - (3.5 / window.getZoom()) / 2.0;
+        return IntStream.range(0, pixWidth)
+                .mapToDouble(x -> left + x * xStep).toArray();
+    }
+
+    private static double[] scaleY(final int pixHeight, final Window window, final double xStep) {
+        final double bottom = window.getCenterY() - (pixHeight / 2) * xStep;
+        return IntStream.range(0, pixHeight)
+                .mapToDouble(y -> bottom + y * xStep).toArray();
+    }
+
+    /**
+     * Whether any part of the window falls within the bounding box of the main
+     * cardioid and the period-2 bulb, in which case it is worth testing each
+     * point against them before iterating. This is true for the shallow zooms,
+     * and false for most deep ones.
+     */
+    private static boolean overlapsBulbs(final double[] scaleX, final double[] scaleY) {
+        if (scaleX.length == 0 || scaleY.length == 0) {
+            return false;
+        }
+        return scaleX[0] <= BULBS_RIGHT && scaleX[scaleX.length - 1] >= BULBS_LEFT
+                && scaleY[0] <= BULBS_HALF_HEIGHT && scaleY[scaleY.length - 1] >= -BULBS_HALF_HEIGHT;
+    }
+
+    private static int countIterations(final boolean bulbs, final int limit, final double x0, final double y0) {
+        if (bulbs && inBulbs(x0, y0)) {
+            // never escapes, so the iterations would run to the limit anyway.
+            return limit;
+        }
+        return countIterations(limit, x0, y0);
+    }
+
+    /**
+     * Closed-form test for points in the main cardioid or the period-2 bulb,
+     * which together hold most of the set's area.
+     */
+    private static boolean inBulbs(final double x0, final double y0) {
+        final double y2 = y0 * y0;
+        final double xq = x0 - 0.25;
+        final double q = xq * xq + y2;
+        if (q * (q + xq) <= 0.25 * y2) {
+            return true;
+        }
+        final double xb = x0 + 1.0;
+        return xb * xb + y2 <= 0.0625;
+    }
+
     private static int countIterations(final int limit, final double x0, final double y0) {
         double x = 0.0;
         double y = 0.0;
@@ -10,18 +10,20 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Stream;
 
-import javax.swing.Icon;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -44,20 +46,44 @@ public class Mandy extends JFrame {
     // default width for image.
     private static final int DEFAULT_WIDTH = 1024;
     
+    // predicted pans move this fraction of the frame width.
+    private static final double PAN_FRACTION = 0.25;
+    
+    // zoom exponent range, and how far one wheel notch moves it.
+    private static final double ZOOM_MIN = -1.0;
+    private static final double ZOOM_MAX = 150;
+    private static final double ZOOM_STEP = 0.1;
+    
     /**
      * Run the main GUI app.
-     * @param args all arguments ignored.
+     * @param args optionally <code>-record &lt;file&gt;</code> to record the
+     *            navigation in a trace file for {@link TraceReplay}, all other
+     *            arguments ignored.
+     * @throws IOException if the trace file cannot be created.
      */
-    public static void main(String[] args) {
-        java.awt.EventQueue.invokeLater(() -> new Mandy().setVisible(true));        
+    public static void main(String[] args) throws IOException {
+        final TraceRecorder recorder = args.length >= 2 && "-record".equals(args[0])
+                ? new TraceRecorder(new File(args[1])) : null;
+        if (recorder != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    recorder.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "Mandelbrot Trace"));
+        }
+        java.awt.EventQueue.invokeLater(() -> new Mandy(recorder).setVisible(true));        
     }
 
     private final BlockingQueue<WindowState> stateq = new LinkedBlockingQueue<>();
+    private final TraceRecorder recorder;
     private final JLabel canvas = new JLabel();
-    private final SpinnerNumberModel zoomModel = new SpinnerNumberModel(0.0, -1.0, 150, 0.1);
+    private final SpinnerNumberModel zoomModel = new SpinnerNumberModel(0.0, ZOOM_MIN, ZOOM_MAX, ZOOM_STEP);
     private final SpinnerNumberModel realModel = new SpinnerNumberModel(-2.5 + 3.5/2.0, -2.5, 1.0, 0.1);
     private final SpinnerNumberModel imaginaryModel = new SpinnerNumberModel(0.0, -1.5, 1.5, 0.1);
     private final JSpinner limit = new JSpinner(new SpinnerNumberModel(100, 10, 100000, 1));
+    private final JCheckBox adaptive = new JCheckBox("(limit is the maximum)");
     private final JSpinner zoom = new JSpinner(zoomModel);
     private final JSpinner real = new JSpinner(realModel);
     private final JSpinner imaginary = new JSpinner(imaginaryModel);
@@ -70,10 +96,19 @@ public class Mandy extends JFrame {
 //    private final LineBorder borderGreen = new LineBorder(Color.GREEN, 3, true);
     
     // only ever changed on the EDT
-    private final AtomicReference<WindowState> currentState = new AtomicReference<>(new WindowState(0, 0, 0, 0, 0, 0, 0));
+    private final AtomicReference<WindowState> currentState = new AtomicReference<>(new WindowState(0, 0, 0, 0, 0, 0, 0, false));
     
-    Mandy() {
+    // the direction of the current drag, weighted to recent movement. Only accessed on the EDT
+    private double dragX = 0;
+    private double dragY = 0;
+    
+    // the most recently completed frame. Only accessed on the EDT
+    private WindowState shownState = null;
+    private BufferedImage shownImage = null;
+    
+    Mandy(TraceRecorder recorder) {
         super("Mandelbrot Navigator");
+        this.recorder = recorder;
         setIconImages(FractIcons.getIcons());
         setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
         
@@ -89,6 +124,8 @@ public class Mandy extends JFrame {
         controls.add(zoom);
         controls.add(new JLabel("Limit:"));
         controls.add(limit);
+        controls.add(new JLabel("Adaptive Limit:"));
+        controls.add(adaptive);
         controls.add(new JLabel("Real:"));
         controls.add(real);
         controls.add(new JLabel("Imaginary:"));
@@ -120,6 +157,7 @@ public class Mandy extends JFrame {
 
         Stream.of(zoom.getModel(), real.getModel(), imaginary.getModel(), limit.getModel())
             .forEach(m -> m.addChangeListener(e -> checkState()));
+        adaptive.addItemListener(e -> checkState());
         
         canvas.addComponentListener(new ComponentAdapter() {
             @Override
@@ -146,6 +184,8 @@ public class Mandy extends JFrame {
                 }
                 realModel.setValue(state.getFocusX() - dx * state.getStep());
                 imaginaryModel.setValue(state.getFocusY() - dy * state.getStep());
+                dragX = dragX / 2 + dx;
+                dragY = dragY / 2 + dy;
                 sx = x;
                 sy = y;
                 checkState();
@@ -153,6 +193,8 @@ public class Mandy extends JFrame {
             @Override
             public void mousePressed(MouseEvent e) {
                 active = e.getModifiersEx() == MouseEvent.BUTTON1_DOWN_MASK;
+                dragX = 0;
+                dragY = 0;
                 sx = e.getX();
                 sy = e.getY();
             }
@@ -181,9 +223,7 @@ public class Mandy extends JFrame {
                 if (state == null) {
                     return;
                 }
-                double val = (double)zoomModel.getValue();
-                double nv = val - e.getWheelRotation() * zoomModel.getStepSize().doubleValue();
-                zoomModel.setValue(Math.min((double)zoomModel.getMaximum(), Math.max((double)zoomModel.getMinimum(), nv)));
+                zoomModel.setValue(wheelZoom((double)zoomModel.getValue(), e.getWheelRotation()));
                 checkState();
             }
         };
@@ -218,6 +258,7 @@ public class Mandy extends JFrame {
                 stateq.drainTo(pending);
                 WindowState recent = pending.getLast();
                 pending.clear();
+                prefetcher.cancel();
                 buildBrot(recent);
             } catch (InterruptedException e) {
                 // ignore interruptions entirely.
@@ -228,50 +269,121 @@ public class Mandy extends JFrame {
 
     /**
      * Identify whether the image needs a redraw - schedule if needed.
+     * @return true if a new state was scheduled (and its preview shown).
      */
-    private void checkState() {
+    private boolean checkState() {
         final int lim = ((Number)limit.getValue()).intValue();
         final double x = ((Number)real.getValue()).doubleValue();
         final double y = ((Number)imaginary.getValue()).doubleValue();
-        final double z = Math.pow(10.0, ((Number)zoom.getValue()).doubleValue());
+        final double z = ((Number)zoom.getValue()).doubleValue();
         final int w = canvas.getWidth();
         final int h = canvas.getHeight();
-        final double span = 3.5 / z;
-        final double step = span / w;
+        final boolean adapt = adaptive.isSelected();
         
-        final WindowState now = new WindowState(w, h, lim, x, y, z, step);
+        final WindowState now = buildState(w, h, lim, adapt, x, y, z);
         
         if (currentState.getAndSet(now).equals(now)) {
             // previous value is same as current.
-            return;
+            return false;
         }
         
+        // any speculative work is now stale, get it out of the way.
+        prefetcher.cancel();
+        
         // add the state to the queue.... the control thread should pick that up.
         if (!stateq.offer(now)) {
             throw new IllegalStateException("Unable to process current state.");
         }
-        realModel.setStepSize(step * 5);
-        imaginaryModel.setStepSize(step * 5);
-        actualZoom.setText(String.format("%8g", z));
-        actualSpan.setText(String.format("%8g", span));
+        if (recorder != null) {
+            recorder.record(now, z, dragX, dragY);
+        }
+        showPreview(now);
+        realModel.setStepSize(now.getStep() * 5);
+        imaginaryModel.setStepSize(now.getStep() * 5);
+        actualZoom.setText(String.format("%8g", now.getZoom()));
+        actualSpan.setText(String.format("%8g", 3.5 / now.getZoom()));
+        return true;
+    }
+    
+    /**
+     * Put an approximation of the given state on the canvas while the real
+     * frame is computed. Must be called on the EDT.
+     */
+    private void showPreview(WindowState state) {
+        if (shownState == null || state.getPixWidth() <= 0 || state.getPixHeight() <= 0) {
+            return;
+        }
+        canvas.setIcon(new ImageIcon(prefetcher.preview(state, shownState, shownImage)));
+    }
+    
+    private static WindowState buildState(int w, int h, int lim, boolean adapt, double x, double y, double zoomExponent) {
+        final double z = Math.pow(10.0, zoomExponent);
+        final double span = 3.5 / z;
+        final double step = span / w;
+        return new WindowState(w, h, lim, x, y, z, step, adapt);
+    }
+    
+    /**
+     * Compute the zoom exponent that the given mouse-wheel rotation leads to.
+     */
+    static double wheelZoom(double zoomExponent, int rotation) {
+        double nv = zoomExponent - rotation * ZOOM_STEP;
+        return Math.min(ZOOM_MAX, Math.max(ZOOM_MIN, nv));
+    }
+    
+    /**
+     * Identify the states the user is most likely to navigate to from the
+     * given state: one wheel notch in, one out, and a pan of a quarter frame
+     * in the direction of the most recent drag.
+     * @param state the state being shown
+     * @param zoomExponent the zoom exponent the state was built from
+     * @param dragX the recent horizontal drag, in pixels
+     * @param dragY the recent vertical drag, in pixels
+     * @return the likely states, most likely first.
+     */
+    static List<WindowState> predictStates(WindowState state, double zoomExponent, double dragX, double dragY) {
+        final int w = state.getPixWidth();
+        final int h = state.getPixHeight();
+        final int lim = state.getLimit();
+        final boolean adapt = state.isAdaptive();
+        final double x = state.getFocusX();
+        final double y = state.getFocusY();
         
+        List<WindowState> states = new ArrayList<>();
+        states.add(buildState(w, h, lim, adapt, x, y, wheelZoom(zoomExponent, -1)));
+        states.add(buildState(w, h, lim, adapt, x, y, wheelZoom(zoomExponent, 1)));
+        final double drag = Math.hypot(dragX, dragY);
+        if (drag > 0) {
+            // whole pixels, as a drag would move.
+            final long px = Math.round(dragX / drag * w * PAN_FRACTION);
+            final long py = Math.round(dragY / drag * w * PAN_FRACTION);
+            states.add(buildState(w, h, lim, adapt, x - px * state.getStep(), y - py * state.getStep(),
+                    zoomExponent));
+        }
+        states.removeIf(s -> s.equals(state));
+        return states;
     }
 
-    private final ConcurrentMap<Integer, int[]> colormap = new ConcurrentHashMap<>();
+    private final Prefetcher prefetcher = new Prefetcher();
     
     private void buildBrot(WindowState state) {
         SwingUtilities.invokeLater(() -> actualFlag.setBackground(Color.RED));
-        int[] cmap = colormap.computeIfAbsent(state.getLimit(), k -> Mandelbrot.buildColors(k));
         long nanos = System.nanoTime();
-        Mandelbrot.Window window = new Mandelbrot.Window(state.getFocusX(), state.getFocusY(), state.getZoom());
-        int[][] brot = Mandelbrot.mandelbrot(state.getPixWidth(), state.getPixHeight(), state.getLimit(), window);
-        BufferedImage image = Mandelbrot.mapMandelbrot(brot, cmap);
-        final Icon icon = new ImageIcon(image);
+        final BufferedImage frame = prefetcher.render(state);
         SwingUtilities.invokeLater(() -> {
-            canvas.setIcon(icon);
+            shownState = state;
+            shownImage = frame;
             actualBrot.setText(String.format("%.3f ms", (System.nanoTime() - nanos)/ 1000000.0));
             actualFlag.setBackground(Color.GREEN);
-            checkState();
+            boolean scheduled = checkState();
+            if (state.equals(currentState.get())) {
+                canvas.setIcon(new ImageIcon(frame));
+                // nothing else to do, get ahead of the user.
+                prefetcher.prefetch(predictStates(state, (double)zoomModel.getValue(), dragX, dragY));
+            } else if (!scheduled) {
+                // the user had already moved on, refresh the preview with this frame rather than step back to it.
+                showPreview(currentState.get());
+            }
         });
     }
 
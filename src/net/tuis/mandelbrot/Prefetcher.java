@@ -0,0 +1,194 @@
+package net.tuis.mandelbrot;
+
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Speculatively renders the states the user is likely to navigate to next, and
+ * keeps a small cache of recently rendered frames.
+ * <p>
+ * Prefetching happens on a single low-priority thread and is abandoned as soon
+ * as {@link #cancel()} is called, so it never competes with a real render for
+ * long.
+ */
+class Prefetcher implements ThreadFactory {
+
+    // number of frames to keep, at 1024 pixels wide each frame is about 2.5MB
+    private static final int CACHE_SIZE = 16;
+
+    private final Map<WindowState, BufferedImage> cache = new LinkedHashMap<WindowState, BufferedImage>(CACHE_SIZE, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<WindowState, BufferedImage> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final ConcurrentMap<Integer, int[]> colormap = new ConcurrentHashMap<>();
+    private final ExecutorService service = Executors.newSingleThreadExecutor(this);
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Get a previously rendered frame for the given state.
+     * @param state the state to look up
+     * @return the cached frame, or null if there is none.
+     */
+    public BufferedImage get(WindowState state) {
+        synchronized (cache) {
+            return cache.get(state);
+        }
+    }
+
+    /**
+     * Get the frame for the given state, rendering it as quickly as possible
+     * if it is not already cached.
+     * @param state the state to render
+     * @return the frame.
+     */
+    public BufferedImage render(WindowState state) {
+        BufferedImage image = get(state);
+        if (image == null) {
+            int[] cmap = colormap.computeIfAbsent(state.getLimit(), k -> Mandelbrot.buildColors(k));
+            Mandelbrot.Window window = new Mandelbrot.Window(state.getFocusX(), state.getFocusY(), state.getZoom());
+            int[][] brot = Mandelbrot.mandelbrot(state.getPixWidth(), state.getPixHeight(), state.getLimit(), state.isAdaptive(), window);
+            image = Mandelbrot.mapMandelbrot(brot, cmap);
+            put(state, image);
+        }
+        return image;
+    }
+
+    /**
+     * Record a rendered frame.
+     * @param state the state the frame was rendered for
+     * @param image the rendered frame
+     */
+    public void put(WindowState state, BufferedImage image) {
+        synchronized (cache) {
+            cache.put(state, image);
+        }
+    }
+
+    /**
+     * Build an approximation of the frame for the given state by scaling and
+     * translating frames that have already been rendered. The most recently
+     * shown frame is drawn over the top of any other cached frames with the
+     * same limit, areas that nothing covers are left transparent.
+     * @param target the state to approximate
+     * @param shown the state of the most recently shown frame
+     * @param shownImage the most recently shown frame
+     * @return an image the size of the target state.
+     */
+    public BufferedImage preview(WindowState target, WindowState shown, BufferedImage shownImage) {
+        BufferedImage exact = get(target);
+        if (exact != null) {
+            return exact;
+        }
+        final List<Map.Entry<WindowState, BufferedImage>> frames;
+        synchronized (cache) {
+            frames = new ArrayList<>(cache.entrySet());
+        }
+        BufferedImage image = new BufferedImage(target.getPixWidth(), target.getPixHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            if (!covers(shown, target)) {
+                // least recently used first, so fresher frames land on top.
+                for (Map.Entry<WindowState, BufferedImage> frame : frames) {
+                    if (frame.getKey().getLimit() == target.getLimit() && !frame.getKey().equals(shown)) {
+                        draw(g, target, frame.getKey(), frame.getValue());
+                    }
+                }
+            }
+            draw(g, target, shown, shownImage);
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    private static boolean covers(WindowState source, WindowState target) {
+        double step = target.getStep();
+        double left = (left(source) - left(target)) / step;
+        double top = (bottom(source) - bottom(target)) / step;
+        double scale = source.getStep() / step;
+        return left <= 0 && top <= 0
+                && left + source.getPixWidth() * scale >= target.getPixWidth()
+                && top + source.getPixHeight() * scale >= target.getPixHeight();
+    }
+
+    private static void draw(Graphics2D g, WindowState target, WindowState source, BufferedImage image) {
+        double step = target.getStep();
+        double left = (left(source) - left(target)) / step;
+        double top = (bottom(source) - bottom(target)) / step;
+        double scale = source.getStep() / step;
+        if (left >= target.getPixWidth() || top >= target.getPixHeight()
+                || left + source.getPixWidth() * scale <= 0 || top + source.getPixHeight() * scale <= 0) {
+            // nothing in common.
+            return;
+        }
+        g.drawImage(image, new AffineTransform(scale, 0, 0, scale, left, top), null);
+    }
+
+    // these mirror the window layout in Mandelbrot.mandelbrot(...)
+    private static double left(WindowState state) {
+        return state.getFocusX() - (3.5 / state.getZoom()) / 2.0;
+    }
+
+    private static double bottom(WindowState state) {
+        return state.getFocusY() - (state.getPixHeight() / 2) * state.getStep();
+    }
+
+    /**
+     * Abandon any prefetch work in progress.
+     */
+    public void cancel() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Replace any outstanding prefetch work with renders of the given states,
+     * in order of preference.
+     * @param states the states that are likely to be needed next.
+     */
+    public void prefetch(List<WindowState> states) {
+        final long gen = generation.incrementAndGet();
+        service.execute(() -> {
+            for (WindowState state : states) {
+                if (generation.get() != gen) {
+                    return;
+                }
+                if (get(state) != null) {
+                    continue;
+                }
+                int[] cmap = colormap.computeIfAbsent(state.getLimit(), k -> Mandelbrot.buildColors(k));
+                Mandelbrot.Window window = new Mandelbrot.Window(state.getFocusX(), state.getFocusY(), state.getZoom());
+                int[][] brot = Mandelbrot.mandelbrot(state.getPixWidth(), state.getPixHeight(), state.getLimit(),
+                        state.isAdaptive(), window, () -> generation.get() != gen);
+                if (brot == null) {
+                    return;
+                }
+                put(state, Mandelbrot.mapMandelbrot(brot, cmap));
+            }
+        });
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Mandelbrot Prefetch");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    }
+
+}
@@ -0,0 +1,169 @@
+package net.tuis.mandelbrot;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A size-bounded cache of encoded tiles on disk. The least recently used tiles
+ * are deleted when the cache grows beyond its limit.
+ * <p>
+ * Tiles are stored as <code>&lt;limit&gt;/&lt;z&gt;/&lt;x&gt;/&lt;y&gt;.png</code>
+ * beneath the cache directory, so the cache survives restarts. Recency is
+ * tracked in memory, and only written back to the file times occasionally so
+ * that the order is roughly kept over a restart.
+ */
+class TileCache {
+
+    // how often a tile's file time is updated when it is used.
+    private static final long TOUCH_MILLIS = 10 * 60 * 1000;
+
+    private static final class Entry {
+        private final long size;
+        private long touched;
+
+        private Entry(long size, long touched) {
+            this.size = size;
+            this.touched = touched;
+        }
+    }
+
+    private final Path root;
+    private final long maxBytes;
+    // access ordered, so iteration starts at the least recently used tile.
+    private final LinkedHashMap<Path, Entry> index = new LinkedHashMap<>(1024, 0.75f, true);
+    private long bytes = 0;
+
+    public TileCache(Path root, long maxBytes) throws IOException {
+        this.root = root;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(root);
+        final List<Path> tiles;
+        try (Stream<Path> files = Files.walk(root)) {
+            tiles = files.filter(p -> p.toString().endsWith(".png") || p.toString().endsWith(".tmp"))
+                    .collect(Collectors.toList());
+        }
+        for (Path p : tiles) {
+            if (p.toString().endsWith(".tmp")) {
+                // left mid-write by a crash, it would never be counted or evicted.
+                Files.deleteIfExists(p);
+            }
+        }
+        tiles.stream().filter(p -> p.toString().endsWith(".png"))
+                .sorted(Comparator.comparing(TileCache::lastModified))
+                .forEach(p -> index.put(p, new Entry(size(p), lastModified(p).toMillis())));
+        bytes = index.values().stream().mapToLong(e -> e.size).sum();
+        evict();
+    }
+
+    private static Path path(Path root, int limit, int z, long x, long y) {
+        return root.resolve(Integer.toString(limit)).resolve(Integer.toString(z))
+                .resolve(Long.toString(x)).resolve(y + ".png");
+    }
+
+    /**
+     * Get a cached tile.
+     * @return the encoded tile, or null if it is not cached.
+     */
+    public byte[] get(int limit, int z, long x, long y) {
+        Path file = path(root, limit, z, x, y);
+        final long now = System.currentTimeMillis();
+        boolean touch = false;
+        synchronized (index) {
+            Entry entry = index.get(file);
+            if (entry == null) {
+                return null;
+            }
+            if (now - entry.touched > TOUCH_MILLIS) {
+                entry.touched = now;
+                touch = true;
+            }
+        }
+        final byte[] data;
+        try {
+            data = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            // evicted since we looked.
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (touch) {
+            try {
+                // keep the on-disk order roughly in step for the next restart
+                Files.setLastModifiedTime(file, FileTime.fromMillis(now));
+            } catch (NoSuchFileException e) {
+                // evicted since we read it, the data is still good.
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Store a tile, evicting older tiles if the cache is full.
+     */
+    public void put(int limit, int z, long x, long y, byte[] data) {
+        Path file = path(root, limit, z, x, y);
+        try {
+            Files.createDirectories(file.getParent());
+            // write then move so readers never see a partial tile.
+            Path tmp = Files.createTempFile(file.getParent(), "tile", ".tmp");
+            Files.write(tmp, data);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        synchronized (index) {
+            Entry previous = index.put(file, new Entry(data.length, System.currentTimeMillis()));
+            bytes += data.length - (previous == null ? 0 : previous.size);
+            evict();
+        }
+    }
+
+    private void evict() {
+        synchronized (index) {
+            Iterator<Map.Entry<Path, Entry>> it = index.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Map.Entry<Path, Entry> eldest = it.next();
+                it.remove();
+                bytes -= eldest.getValue().size;
+                try {
+                    Files.deleteIfExists(eldest.getKey());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+}
@@ -0,0 +1,382 @@
+package net.tuis.mandelbrot;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serve the Mandelbrot as standard XYZ (slippy map) tiles, so browser based map
+ * viewers can navigate it.
+ * <p>
+ * Tiles are requested as <code>/z/x/y.png?limit=N</code>. Zoom level 0 is a
+ * single tile covering the real range -2.5 to 1.0 and the imaginary range -1.75
+ * to 1.75, each zoom level doubles the magnification.
+ * <p>
+ * Requests are handled on a pool of I/O threads which only serve cached tiles
+ * and send responses. Tiles that need rendering are handed to a separate pool
+ * with one thread per core, and the response is sent when the render
+ * completes, so nothing waits while holding a render thread. When too many
+ * renders are queued the server answers 503 rather than falling further
+ * behind, and a render is abandoned once nobody is waiting for it.
+ * @author rolf
+ */
+public class TileServer implements HttpHandler {
+
+    private static final int TILE_SIZE = 256;
+    private static final double SPAN = 3.5;
+    private static final double LEFT = -2.5;
+    private static final double TOP = -SPAN / 2.0;
+    // keeps 1L << z well defined, tiles run out of precision long before this.
+    private static final int MAX_ZOOM = 62;
+    // pixels closer than this many ulps apart are visibly unevenly spaced.
+    private static final int MIN_ULPS = 4;
+    private static final int DEFAULT_LIMIT = 100;
+    private static final int MAX_LIMIT = 100000;
+    // palettes kept for the most recently requested limits.
+    private static final int PALETTES = 8;
+    // renders queued beyond the ones running, a screenful of tiles or so.
+    private static final int QUEUED_RENDERS = 64;
+    // how long a request waits for its render, and when a busy client should retry.
+    private static final int WAIT_SECONDS = 10;
+    private static final int RETRY_SECONDS = 1;
+
+    private static final Pattern TILE = Pattern.compile("/(\\d+)/(\\d+)/(\\d+)\\.png");
+    private static final Pattern LIMIT = Pattern.compile("(?:^|&)limit=(\\d+)(?:&|$)");
+
+    /**
+     * Run the tile server.
+     * @param args optionally the port (default 8080), the cache directory
+     *            (default <code>tiles</code>) and the cache size in megabytes
+     *            (default 1024).
+     * @throws IOException if the server cannot be started.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        String dir = args.length > 1 ? args[1] : "tiles";
+        long megs = args.length > 2 ? Long.parseLong(args[2]) : 1024;
+
+        final int cores = Runtime.getRuntime().availableProcessors();
+        // each render thread renders one whole tile at a time, so one per core keeps them all busy.
+        ExecutorService renders = new ThreadPoolExecutor(cores, cores, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUED_RENDERS), threads("Mandelbrot Render"));
+        // I/O threads never render, they are only held by disk reads and slow clients.
+        ExecutorService io = Executors.newFixedThreadPool(Math.max(8, cores * 4), threads("Mandelbrot Tiles"));
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(threads("Mandelbrot Timeout"));
+
+        TileServer tiles = new TileServer(new TileCache(Paths.get(dir), megs * 1024 * 1024), renders, io, timer);
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/", tiles);
+        server.setExecutor(io);
+        server.start();
+        System.out.printf("Serving tiles on http://localhost:%d/{z}/{x}/{y}.png%n", port);
+    }
+
+    private static ThreadFactory threads(String name) {
+        final AtomicInteger id = new AtomicInteger();
+        return r -> new Thread(r, name + " " + id.incrementAndGet());
+    }
+
+    /**
+     * A render in progress, with a count of the requests waiting for it. The
+     * render is abandoned when the count drops to zero, and cannot be joined
+     * after that.
+     */
+    private static final class Render implements BooleanSupplier {
+        private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        private final AtomicInteger waiters = new AtomicInteger(1);
+
+        private boolean join() {
+            int count;
+            do {
+                count = waiters.get();
+                if (count == 0) {
+                    return false;
+                }
+            } while (!waiters.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        private boolean leave() {
+            return waiters.decrementAndGet() == 0;
+        }
+
+        // whether the render is cancelled
+        @Override
+        public boolean getAsBoolean() {
+            return waiters.get() == 0;
+        }
+    }
+
+    private final TileCache cache;
+    private final ExecutorService renders;
+    private final ExecutorService io;
+    private final ScheduledExecutorService timer;
+    // the limit comes from the client, so only a few palettes are kept.
+    private final Map<Integer, int[]> colormap = new LinkedHashMap<Integer, int[]>(PALETTES, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+            return size() > PALETTES;
+        }
+    };
+    private final ConcurrentMap<String, Render> inflight = new ConcurrentHashMap<>();
+
+    TileServer(TileCache cache, ExecutorService renders, ExecutorService io, ScheduledExecutorService timer) {
+        this.cache = cache;
+        this.renders = renders;
+        this.io = io;
+        this.timer = timer;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        boolean async = false;
+        try {
+            Matcher tile = TILE.matcher(exchange.getRequestURI().getPath());
+            if (!"GET".equals(exchange.getRequestMethod()) || !tile.matches()) {
+                send(exchange, 404, null);
+                return;
+            }
+            final int limit = limit(exchange.getRequestURI().getRawQuery());
+            final int z;
+            final long x, y;
+            try {
+                z = Integer.parseInt(tile.group(1));
+                x = Long.parseLong(tile.group(2));
+                y = Long.parseLong(tile.group(3));
+            } catch (NumberFormatException e) {
+                send(exchange, 404, null);
+                return;
+            }
+            if (limit < 1 || limit > MAX_LIMIT || z > MAX_ZOOM || x >= (1L << z) || y >= (1L << z)
+                    || !resolvable(z, x, y)) {
+                send(exchange, limit < 1 || limit > MAX_LIMIT ? 400 : 404, null);
+                return;
+            }
+            byte[] data = cache.get(limit, z, x, y);
+            if (data != null) {
+                send(exchange, 200, data);
+                return;
+            }
+            final String key = limit + "/" + z + "/" + x + "/" + y;
+            final Render render;
+            try {
+                render = tile(key, limit, z, x, y);
+            } catch (RejectedExecutionException e) {
+                busy(exchange);
+                return;
+            }
+            async = true;
+            await(exchange, key, render);
+        } catch (Exception e) {
+            async = false;
+            e.printStackTrace();
+            if (exchange.getResponseCode() < 0) {
+                send(exchange, 500, null);
+            }
+        } finally {
+            if (!async) {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * Respond when the render completes, or give up on it after a while. The
+     * HTTP server does not say when a client goes away, so giving up is the
+     * only way a render nobody wants any more gets dropped.
+     */
+    private void await(HttpExchange exchange, String key, Render render) {
+        final AtomicBoolean answered = new AtomicBoolean();
+        final ScheduledFuture<?> timeout = timer.schedule(() -> {
+            if (answered.compareAndSet(false, true)) {
+                if (render.leave()) {
+                    inflight.remove(key, render);
+                }
+                io.execute(() -> {
+                    try {
+                        busy(exchange);
+                    } catch (IOException e) {
+                        // the client has gone away.
+                    } finally {
+                        exchange.close();
+                    }
+                });
+            }
+        }, WAIT_SECONDS, TimeUnit.SECONDS);
+        render.future.whenCompleteAsync((rendered, failure) -> {
+            if (answered.compareAndSet(false, true)) {
+                timeout.cancel(false);
+                respond(exchange, rendered, failure);
+            }
+        }, io);
+    }
+
+    private static void respond(HttpExchange exchange, byte[] data, Throwable failure) {
+        try {
+            if (failure != null) {
+                failure.printStackTrace();
+                send(exchange, 500, null);
+            } else {
+                send(exchange, 200, data);
+            }
+        } catch (IOException e) {
+            // the client has gone away.
+            e.printStackTrace();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static int limit(String query) {
+        if (query == null) {
+            return DEFAULT_LIMIT;
+        }
+        Matcher m = LIMIT.matcher(query);
+        if (!m.find()) {
+            return DEFAULT_LIMIT;
+        }
+        try {
+            return Integer.parseInt(m.group(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Whether a double can place every pixel of the tile evenly. How deep that
+     * goes depends on how far the tile is from the origin, around zoom 44 for
+     * the interesting parts of the set.
+     */
+    private static boolean resolvable(int z, long x, long y) {
+        final double side = SPAN / (1L << z);
+        final double extent = Math.max(
+                Math.max(Math.abs(LEFT + x * side), Math.abs(LEFT + (x + 1) * side)),
+                Math.max(Math.abs(TOP + y * side), Math.abs(TOP + (y + 1) * side)));
+        return side / TILE_SIZE >= MIN_ULPS * Math.ulp(extent);
+    }
+
+    /**
+     * Get the encoded tile from a render pool thread. Concurrent requests for
+     * the same tile share a single render.
+     * @throws RejectedExecutionException if too many renders are queued.
+     */
+    private Render tile(String key, int limit, int z, long x, long y) {
+        while (true) {
+            final Render mine = new Render();
+            final Render render = inflight.putIfAbsent(key, mine);
+            if (render == null) {
+                submit(key, mine, limit, z, x, y);
+                return mine;
+            }
+            if (render.join()) {
+                return render;
+            }
+            // everyone else has given up on it, start again.
+            inflight.remove(key, render);
+        }
+    }
+
+    private void submit(String key, Render mine, int limit, int z, long x, long y) {
+        try {
+            renders.execute(() -> {
+                try {
+                    byte[] data = cache.get(limit, z, x, y);
+                    if (data == null) {
+                        data = render(limit, z, x, y, mine);
+                    }
+                    if (data == null) {
+                        mine.future.cancel(false);
+                        return;
+                    }
+                    cache.put(limit, z, x, y, data);
+                    mine.future.complete(data);
+                } catch (IOException | RuntimeException e) {
+                    mine.future.completeExceptionally(e);
+                } finally {
+                    inflight.remove(key, mine);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inflight.remove(key, mine);
+            throw e;
+        }
+    }
+
+    private int[] palette(int limit) {
+        synchronized (colormap) {
+            return colormap.computeIfAbsent(limit, k -> Mandelbrot.buildColors(k));
+        }
+    }
+
+    /**
+     * Render and encode a tile.
+     * @return the encoded tile, or null if the render was cancelled.
+     */
+    private byte[] render(int limit, int z, long x, long y, BooleanSupplier cancelled) throws IOException {
+        final double side = SPAN / (1L << z);
+        final double centerX = LEFT + (x + 0.5) * side;
+        final double centerY = TOP + (y + 0.5) * side;
+        final Mandelbrot.Window window = new Mandelbrot.Window(centerX, centerY, 1L << z);
+        final int[] cmap = palette(limit);
+        // render on this worker thread, the pool already provides the parallelism.
+        final int[][] brot = Mandelbrot.mandelbrot(TILE_SIZE, TILE_SIZE, limit, window, cancelled);
+        if (brot == null) {
+            return null;
+        }
+        final BufferedImage image = Mandelbrot.mapMandelbrot(brot, cmap);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", bytes);
+        return bytes.toByteArray();
+    }
+
+    private static void busy(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Retry-After", Integer.toString(RETRY_SECONDS));
+        send(exchange, 503, null);
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] data) throws IOException {
+        if (data == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "image/png");
+        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+        // a tile never changes.
+        exchange.getResponseHeaders().set("Cache-Control", "public, max-age=31536000, immutable");
+        exchange.sendResponseHeaders(status, data.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(data);
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+package net.tuis.mandelbrot;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Record the sequence of states a user navigates through, with timestamps, so
+ * the session can be replayed later by {@link TraceReplay}.
+ * <p>
+ * The file is a 4-byte magic value followed by one fixed-size binary record per
+ * state: the nanoseconds since recording started, the pixel width, height and
+ * limit, the focus X, focus Y, zoom and step, whether the limit is adaptive,
+ * and the zoom exponent and recent drag that {@link Mandy} predicts from.
+ */
+class TraceRecorder implements Closeable {
+
+    static final int MAGIC = 0x4d545233; // "MTR3"
+
+    private final DataOutputStream out;
+    private final long start = System.nanoTime();
+    private boolean failed = false;
+
+    public TraceRecorder(File file) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeInt(MAGIC);
+        out.flush();
+    }
+
+    /**
+     * Append a state to the trace. Recording stops quietly at the first failure.
+     * @param state the state to record
+     * @param zoomExponent the zoom exponent the state was built from
+     * @param dragX the recent horizontal drag, in pixels
+     * @param dragY the recent vertical drag, in pixels
+     */
+    public synchronized void record(WindowState state, double zoomExponent, double dragX, double dragY) {
+        if (failed) {
+            return;
+        }
+        try {
+            out.writeLong(System.nanoTime() - start);
+            out.writeInt(state.getPixWidth());
+            out.writeInt(state.getPixHeight());
+            out.writeInt(state.getLimit());
+            out.writeDouble(state.getFocusX());
+            out.writeDouble(state.getFocusY());
+            out.writeDouble(state.getZoom());
+            out.writeDouble(state.getStep());
+            out.writeBoolean(state.isAdaptive());
+            out.writeDouble(zoomExponent);
+            out.writeDouble(dragX);
+            out.writeDouble(dragY);
+            // states arrive at human speed, keep the file complete in case we are killed.
+            out.flush();
+        } catch (IOException e) {
+            failed = true;
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+}
@@ -0,0 +1,217 @@
+package net.tuis.mandelbrot;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless replay of a session trace recorded by {@link TraceRecorder}, reporting
+ * how the render engine copes with a realistic navigation workload.
+ * @author rolf
+ */
+public class TraceReplay {
+
+    private static final class Event {
+        private final long nanos;
+        private final WindowState state;
+        private final double zoomExponent;
+        private final double dragX;
+        private final double dragY;
+
+        private Event(long nanos, WindowState state, double zoomExponent, double dragX, double dragY) {
+            this.nanos = nanos;
+            this.state = state;
+            this.zoomExponent = zoomExponent;
+            this.dragX = dragX;
+            this.dragY = dragY;
+        }
+    }
+
+    private static final class Pending {
+        private final long offered;
+        private final Event event;
+
+        private Pending(long offered, Event event) {
+            this.offered = offered;
+            this.event = event;
+        }
+    }
+
+    // marks the end of the trace on the replay queue.
+    private static final Pending END = new Pending(0, null);
+
+    /**
+     * Replay a trace file.
+     * @param args the trace file, optionally followed by <code>-max</code> to
+     *            render every state back to back instead of at the recorded pace.
+     * @throws IOException if the trace cannot be read.
+     * @throws InterruptedException if the replay is interrupted.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: TraceReplay <trace file> [-max]");
+            System.exit(1);
+        }
+        final boolean max = args.length > 1 && "-max".equals(args[1]);
+        final List<Event> events = read(new File(args[0]));
+        final TraceReplay replay = new TraceReplay();
+        final long start = System.nanoTime();
+        if (max) {
+            replay.replayMax(events);
+        } else {
+            replay.replayRecorded(events);
+        }
+        replay.report(events.size(), System.nanoTime() - start);
+    }
+
+    private static List<Event> read(File file) throws IOException {
+        List<Event> events = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != TraceRecorder.MAGIC) {
+                throw new IOException("Not a Mandelbrot trace file: " + file);
+            }
+            while (true) {
+                final long nanos;
+                try {
+                    nanos = in.readLong();
+                } catch (EOFException e) {
+                    // clean end of trace.
+                    break;
+                }
+                int w = in.readInt();
+                int h = in.readInt();
+                int limit = in.readInt();
+                double x = in.readDouble();
+                double y = in.readDouble();
+                double zoom = in.readDouble();
+                double step = in.readDouble();
+                boolean adaptive = in.readBoolean();
+                double zoomExponent = in.readDouble();
+                double dragX = in.readDouble();
+                double dragY = in.readDouble();
+                if (w > 0 && h > 0) {
+                    events.add(new Event(nanos, new WindowState(w, h, limit, x, y, zoom, step, adaptive),
+                            zoomExponent, dragX, dragY));
+                }
+            }
+        }
+        return events;
+    }
+
+    // the same frame cache, and render path, that Mandy uses.
+    private final Prefetcher prefetcher = new Prefetcher();
+    private final List<Long> latencies = new ArrayList<>();
+    private int coalesced = 0;
+    private int hits = 0;
+    private int prefetches = 0;
+
+    /**
+     * Render every state back to back. The next state is always waiting, so
+     * there is never any idle time to prefetch in.
+     */
+    private void replayMax(List<Event> events) {
+        for (Event event : events) {
+            long nanos = System.nanoTime();
+            render(event.state);
+            latencies.add(System.nanoTime() - nanos);
+        }
+    }
+
+    /**
+     * Feed the states in at the pace they were recorded, and consume them the
+     * same way Mandy's control thread does: only the most recent pending state
+     * is rendered, and when nothing else is pending the likely next states are
+     * prefetched.
+     */
+    private void replayRecorded(List<Event> events) throws InterruptedException {
+        final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+        Thread feeder = new Thread(() -> {
+            final long start = System.nanoTime();
+            try {
+                for (Event event : events) {
+                    long wait = event.nanos - (System.nanoTime() - start);
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    queue.add(new Pending(System.nanoTime(), event));
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } finally {
+                queue.add(END);
+            }
+        }, "Trace Feeder");
+        feeder.setDaemon(true);
+        feeder.start();
+
+        Deque<Pending> pending = new ArrayDeque<>();
+        boolean done = false;
+        while (!done) {
+            pending.add(queue.take());
+            queue.drainTo(pending);
+            if (pending.getLast() == END) {
+                done = true;
+                pending.removeLast();
+            }
+            if (pending.isEmpty()) {
+                continue;
+            }
+            Pending recent = pending.getLast();
+            coalesced += pending.size() - 1;
+            pending.clear();
+            render(recent.event.state);
+            latencies.add(System.nanoTime() - recent.offered);
+            if (queue.isEmpty()) {
+                prefetches++;
+                prefetcher.prefetch(Mandy.predictStates(recent.event.state, recent.event.zoomExponent,
+                        recent.event.dragX, recent.event.dragY));
+            }
+        }
+    }
+
+    private void render(WindowState state) {
+        prefetcher.cancel();
+        if (prefetcher.get(state) != null) {
+            hits++;
+        }
+        prefetcher.render(state);
+    }
+
+    private void report(int states, long elapsed) {
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        double seconds = elapsed / 1000000000.0;
+        System.out.printf("States:       %d%n", states);
+        System.out.printf("Frames:       %d%n", sorted.length);
+        System.out.printf("Coalesced:    %d%n", coalesced);
+        System.out.printf("Cache hits:   %d%n", hits);
+        System.out.printf("Prefetches:   %d%n", prefetches);
+        System.out.printf("Elapsed:      %.3f s%n", seconds);
+        System.out.printf("Throughput:   %.3f frames/s%n", sorted.length / seconds);
+        if (sorted.length == 0) {
+            return;
+        }
+        System.out.printf("Latency p50:  %.3f ms%n", percentile(sorted, 50) / 1000000.0);
+        System.out.printf("Latency p90:  %.3f ms%n", percentile(sorted, 90) / 1000000.0);
+        System.out.printf("Latency p99:  %.3f ms%n", percentile(sorted, 99) / 1000000.0);
+        System.out.printf("Latency max:  %.3f ms%n", sorted[sorted.length - 1] / 1000000.0);
+        System.out.printf("Latency mean: %.3f ms%n", Arrays.stream(sorted).average().getAsDouble() / 1000000.0);
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        // nearest-rank percentile
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+}
@@ -4,8 +4,9 @@ package net.tuis.mandelbrot;
 final class WindowState {
     private final int pixWidth, pixHeight, limit;
     private final double focusX, focusY, zoom, step;
+    private final boolean adaptive;
 
-    public WindowState(int pixWidth, int pixHeight, int limit, double focusX, double focusY, double zoom, double step) {
+    public WindowState(int pixWidth, int pixHeight, int limit, double focusX, double focusY, double zoom, double step, boolean adaptive) {
         super();
         this.pixWidth = pixWidth;
         this.pixHeight = pixHeight;
@@ -14,6 +15,7 @@ final class WindowState {
         this.focusY = focusY;
         this.zoom = zoom;
         this.step = step;
+        this.adaptive = adaptive;
     }
 
     public int getPixWidth() {
@@ -43,12 +45,21 @@ final class WindowState {
     public double getStep() {
         return step;
     }
+    
+    /**
+     * Whether the limit is only the maximum, with the actual limit chosen per frame.
+     * @return true if the limit is adaptive.
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
 
     @Override
     public int hashCode() {
         final int prime = 31;
         int result = 1;
         long temp;
+        result = prime * result + (adaptive ? 1231 : 1237);
         temp = Double.doubleToLongBits(focusX);
         result = prime * result + (int) (temp ^ (temp >>> 32));
         temp = Double.doubleToLongBits(focusY);
@@ -73,6 +84,9 @@ final class WindowState {
             return false;
         }
         WindowState other = (WindowState) obj;
+        if (adaptive != other.adaptive) {
+            return false;
+        }
         if (Double.doubleToLongBits(focusX) != Double.doubleToLongBits(other.focusX)) {
             return false;
         }